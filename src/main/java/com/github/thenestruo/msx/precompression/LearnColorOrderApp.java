@@ -0,0 +1,101 @@
+package com.github.thenestruo.msx.precompression;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.tinylog.Logger;
+
+import com.github.thenestruo.commons.msx.MsxCharset;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import picocli.CommandLine.Parameters;
+
+@Command(name = "learn-color-order", sortOptions = false)
+public class LearnColorOrderApp implements Callable<Integer> {
+
+	public static void main(final String... args) {
+		System.exit(new CommandLine(new LearnColorOrderApp()).execute(args));
+	}
+
+	@Option(names = { "-h", "--help" }, usageHelp = true, description = "shows usage")
+	private boolean help;
+
+	@Option(names = { "-v", "--verbose" }, description = "verbose execution")
+	private boolean verbose;
+
+	@Option(names = { "-vv", "--very-verbose" }, description = "very verbose execution")
+	private boolean veryVerbose;
+
+	@Parameters(index = "0..*", arity = "1..*", paramLabel = "chrtbl",
+			description = "binary input file(s): CHRTBL (CLRTBL files are expected alongside, with .clr extension)")
+	private List<Path> chrtblInputPaths;
+
+	@Option(names = { "-o", "--output" }, required = true, paramLabel = "file",
+			description = "text file where the learned color order will be written")
+	private Path colorOrderOutputPath;
+
+	@Option(names = { "-i", "--iterations" }, defaultValue = "1000",
+			description = "iterations of each search chain (default: ${DEFAULT-VALUE})")
+	private int iterations;
+
+	@Option(names = { "-j", "--chains" }, defaultValue = "0",
+			description = "parallel search chains (default: available processors)")
+	private int chains;
+
+	@Option(names = { "--seed" }, defaultValue = "0", description = "random seed (default: ${DEFAULT-VALUE})")
+	private long seed;
+
+	@Option(names = { "-b", "--backwards" }, description = "optimize for backwards compression (e.g.: ZX0 -b)")
+	private boolean backwards;
+
+	@Option(names = { "-s", "--stripped" }, description = "force stripped image")
+	private boolean forceStrippedImage;
+
+	@Option(names = { "-n", "--non-stripped" }, description = "force non-stripped image")
+	private boolean forceNonStrippedImage;
+
+	@Override
+	public Integer call() throws IOException {
+
+		// (before using tinylog)
+		PrecompressApp.handleVerbose(this.verbose, this.veryVerbose);
+
+		// Reads the binary files
+		final List<MsxCharset> corpus = new ArrayList<>();
+		for (final Path chrtblInputPath : this.chrtblInputPaths) {
+			final MsxCharset charset = PrecompressApp.readCharset(chrtblInputPath);
+			if (charset == null) {
+				return 10;
+			}
+			corpus.add(charset);
+		}
+
+		final Boolean strippedImage =
+				  this.forceStrippedImage    ? Boolean.TRUE
+				: this.forceNonStrippedImage ? Boolean.FALSE
+				: null;
+		final MsxColorOrderSearch search = new MsxColorOrderSearch()
+				.setOptimizerSupplier(() -> new MsxCharsetOptimizer()
+						.setBackwards(this.backwards)
+						.setForceStrippedImage(strippedImage))
+				.setIterations(this.iterations)
+				.setSeed(this.seed);
+		if (this.chains > 0) {
+			search.setChains(this.chains);
+		}
+		final List<Byte> colorOrder = search.search(corpus);
+
+		// Writes the learned color order
+		final String value = MsxCharsetOptimizer.formatColorOrder(colorOrder);
+		Files.writeString(this.colorOrderOutputPath, value + System.lineSeparator());
+		Logger.info("Color order {} written to {}", value, this.colorOrderOutputPath);
+
+		return 0;
+	}
+}
@@ -2,10 +2,13 @@ package com.github.thenestruo.msx.precompression;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.ToDoubleFunction;
 import java.util.stream.Collectors;
 
@@ -26,7 +29,7 @@ public class MsxCharsetOptimizer {
 	 * because empirical test have shown a slightly better compression ratio:
 	 * {@code 0146C285D937ABEF}
 	 */
-	private static final List<Byte> DEFAULT_COLOR_ORDER = Collections.unmodifiableList(Arrays.asList(
+	static final List<Byte> DEFAULT_COLOR_ORDER = Collections.unmodifiableList(Arrays.asList(
 			// MsxPalettes#YAZIOH_PALETTE, Color#brightness:
 			// (byte) 0x0, (byte) 0x1, (byte) 0x4, (byte) 0x6, (byte) 0xC, (byte) 0x2, (byte) 0x8, (byte) 0x5,
 			// (byte) 0xD, (byte) 0x9, (byte) 0x3, (byte) 0x7, (byte) 0xA, (byte) 0xB, (byte) 0xE, (byte) 0xF
@@ -71,6 +74,38 @@ public class MsxCharsetOptimizer {
 		return this;
 	}
 
+	/**
+	 * @param value the color order, as a string of hexadecimal digits (e.g.: {@code 0146D58C293A7EBF})
+	 * @return the color order
+	 * @throws IllegalArgumentException if the value is not a permutation of the 16 palette indexes
+	 */
+	public static List<Byte> parseColorOrder(final String value) {
+
+		final String trimmedValue = Objects.requireNonNull(value).trim();
+		if (trimmedValue.length() != DEFAULT_COLOR_ORDER.size()) {
+			throw new IllegalArgumentException("Invalid color order: " + value);
+		}
+
+		final List<Byte> colorOrder = new ArrayList<>();
+		for (final char c : trimmedValue.toCharArray()) {
+			final int index = Character.digit(c, 16);
+			if ((index == -1) || colorOrder.contains((byte) index)) {
+				throw new IllegalArgumentException("Invalid color order: " + value);
+			}
+			colorOrder.add((byte) index);
+		}
+		return Collections.unmodifiableList(colorOrder);
+	}
+
+	/**
+	 * @param colorOrder the color order
+	 * @return the color order, as a string of hexadecimal digits (e.g.: {@code 0146D58C293A7EBF})
+	 */
+	public static String formatColorOrder(final List<Byte> colorOrder) {
+
+		return colorOrder.stream().map(i -> String.format("%01X", i)).collect(Collectors.joining());
+	}
+
 	private Boolean forceStrippedImage = null;
 
 	public MsxCharsetOptimizer setForceStrippedImage(final Boolean forceStrippedImage) {
@@ -78,14 +113,72 @@ public class MsxCharsetOptimizer {
 		return this;
 	}
 
-	private Range<Integer> exclusion = null;
+	/** Excluded ranges of lines (i.e.: lines that will be kept as they are) */
+	private final List<Range<Integer>> exclusions = new ArrayList<>();
 
 	public MsxCharsetOptimizer setExclusion(final int from, final int to) {
 		return this.setExclusion(new Range<>(from, to));
 	}
 
 	public MsxCharsetOptimizer setExclusion(final Range<Integer> exclusion) {
-		this.exclusion = exclusion;
+		this.exclusions.clear();
+		return this.addExclusion(exclusion);
+	}
+
+	public MsxCharsetOptimizer setExclusions(final List<Range<Integer>> exclusions) {
+		this.exclusions.clear();
+		if (exclusions != null) {
+			exclusions.forEach(this::addExclusion);
+		}
+		return this;
+	}
+
+	public MsxCharsetOptimizer addExclusion(final Range<Integer> exclusion) {
+		if (exclusion != null) {
+			this.exclusions.add(exclusion);
+		}
+		return this;
+	}
+
+	/** Pinned lines (i.e.: lines that will be kept as they are), in addition to the excluded ranges */
+	private BitSet pinnedLines = null;
+
+	public MsxCharsetOptimizer setPinnedLines(final BitSet pinnedLines) {
+		this.pinnedLines = pinnedLines == null ? null : (BitSet) pinnedLines.clone();
+		return this;
+	}
+
+	/**
+	 * Whether the excluded and pinned lines count toward the preferred background statistics
+	 * (i.e.: whether they are expected to be decompressed along with the optimized lines)
+	 */
+	private boolean excludedLinesColorCounted = true;
+
+	public MsxCharsetOptimizer setExcludedLinesColorCounted(final boolean excludedLinesColorCounted) {
+		this.excludedLinesColorCounted = excludedLinesColorCounted;
+		return this;
+	}
+
+	/**
+	 * Traverses the charset from the last line to the first one,
+	 * for compressors/decompressors that work backwards (e.g.: ZX0 backwards mode).
+	 */
+	private boolean backwards = false;
+
+	public MsxCharsetOptimizer setBackwards(final boolean backwards) {
+		this.backwards = backwards;
+		return this;
+	}
+
+	/**
+	 * Optional charset that precedes the charset to be optimized in the same compressed stream
+	 * (i.e.: data that will be skipped by the compressor but still usable as dictionary).
+	 * In {@link #backwards} mode, the prefix is expected to follow the charset instead.
+	 */
+	private MsxCharset prefix = null;
+
+	public MsxCharsetOptimizer setPrefix(final MsxCharset prefix) {
+		this.prefix = prefix;
 		return this;
 	}
 
@@ -94,10 +187,99 @@ public class MsxCharsetOptimizer {
 	public MsxCharset optimize(final MsxCharset charset) {
 
 		boolean strippedImage = this.detectStrippedImage(charset);
-		return new Process(charset, this.colorOrder, strippedImage, this.exclusion)
+		return new Process(charset, this.colorOrder, strippedImage,
+					this.excludedLines(charset.size()), this.excludedLinesColorCounted,
+					this.prefix, this.backwards)
 				.optimize();
 	}
 
+	/**
+	 * @param size the size of the charset
+	 * @return the excluded ranges and the pinned lines, compiled into a single bitset
+	 */
+	private BitSet excludedLines(final int size) {
+
+		final BitSet excludedLines = new BitSet(size);
+		if (this.pinnedLines != null) {
+			excludedLines.or(this.pinnedLines.get(0, size));
+		}
+		for (final Range<Integer> exclusion : this.exclusions) {
+			// (both bounds are inclusive)
+			final int from = Math.max(0, exclusion.from());
+			final int to = Math.min(size - 1, exclusion.to());
+			if (from <= to) {
+				excludedLines.set(from, to + 1);
+			}
+		}
+		return excludedLines;
+	}
+
+	/**
+	 * Optimizes a sequence of animation frames, to be uploaded to VRAM one after another.
+	 * Each frame is optimized on its own (in parallel), and then each line reuses
+	 * the encoding of the same line of the previous frame wherever they are equivalent,
+	 * to minimize the bytes that differ between consecutive frames
+	 * @param frames the charsets of the animation frames
+	 * @return the optimized charsets of the animation frames
+	 * @throws IllegalArgumentException if the frames do not have the same size
+	 */
+	public List<MsxCharset> optimizeFrames(final List<MsxCharset> frames) {
+
+		for (final MsxCharset frame : frames) {
+			if (frame.size() != frames.get(0).size()) {
+				throw new IllegalArgumentException(String.format(
+						"Frame size %d differs from first frame size %d", frame.size(), frames.get(0).size()));
+			}
+		}
+
+		// (the frames are independent at this point)
+		final List<MsxCharset> optimizedFrames = frames.parallelStream()
+				.map(this::optimize)
+				.toList();
+
+		// (each frame depends on the previous one)
+		for (int k = 1, m = optimizedFrames.size(); k < m; k++) {
+			final MsxCharset previousFrame = optimizedFrames.get(k - 1);
+			final MsxCharset optimizedFrame = optimizedFrames.get(k);
+			final BitSet excludedLines = this.excludedLines(optimizedFrame.size());
+
+			for (int i = 0, n = optimizedFrame.size(); i < n; i++) {
+				if (excludedLines.get(i)) {
+					continue;
+				}
+
+				final MsxLine previousFrameLine = previousFrame.get(i);
+				if (optimizedFrame.get(i).isEquivalentTo(previousFrameLine)) {
+					optimizedFrame.set(i, previousFrameLine);
+				}
+			}
+		}
+
+		return optimizedFrames;
+	}
+
+	/**
+	 * @param from a charset
+	 * @param to another charset
+	 * @return the number of CHRTBL and CLRTBL bytes that differ between the charsets
+	 * (i.e.: the VRAM writes required to update one charset into the other one)
+	 */
+	public static int deltaSize(final MsxCharset from, final MsxCharset to) {
+
+		return deltaSize(from.chrtbl(), to.chrtbl()) + deltaSize(from.clrtbl(), to.clrtbl());
+	}
+
+	private static int deltaSize(final byte[] from, final byte[] to) {
+
+		int delta = Math.abs(from.length - to.length);
+		for (int i = 0, n = Math.min(from.length, to.length); i < n; i++) {
+			if (from[i] != to[i]) {
+				delta++;
+			}
+		}
+		return delta;
+	}
+
 	private boolean detectStrippedImage(final MsxCharset charset) {
 
 		// Forced to yes/no?
@@ -140,27 +322,99 @@ public class MsxCharsetOptimizer {
 
 		private final boolean strippedImage;
 
-		private final Range<Integer> exclusion;
+		private final BitSet excludedLines;
+
+		private final MsxCharset prefix;
+
+		private final boolean backwards;
+
+		/** The distinct lines of the prefix, closest to the charset first */
+		private final List<MsxLine> prefixLines;
 
 		private final byte preferredBackground;
 
 		//
 
 		private Process(final MsxCharset charset, final List<Byte> colorOrder, final boolean strippedImage,
-				final Range<Integer> exclusion) {
+				final BitSet excludedLines, final boolean excludedLinesColorCounted,
+				final MsxCharset prefix, final boolean backwards) {
 			this.charset = charset;
 			this.colorOrder = colorOrder;
 			this.strippedImage = strippedImage;
-			this.exclusion = exclusion;
-
-			// Locates the most common color (to be used as background where possible)
-			final int[] colorCountByPixel = charset.colorCount(MsxLine::colorCountByPixel);
+			this.excludedLines = excludedLines;
+			this.prefix = ((prefix == null) || (prefix.size() == 0)) ? null : prefix;
+			this.backwards = backwards;
+			this.prefixLines = distinctLines(this.prefix, this.backwards);
+
+			// Locates the most common color (to be used as background where possible),
+			// including the prefix (so the same background is preferred across the whole stream)
+			final int[] colorCountByPixel = (excludedLinesColorCounted || excludedLines.isEmpty())
+					? charset.colorCount(MsxLine::colorCountByPixel)
+					: nonExcludedColorCount(charset, excludedLines);
+			if (this.prefix != null) {
+				final int[] prefixColorCountByPixel = this.prefix.colorCount(MsxLine::colorCountByPixel);
+				for (int i = 0, n = Math.min(colorCountByPixel.length, prefixColorCountByPixel.length); i < n; i++) {
+					colorCountByPixel[i] += prefixColorCountByPixel[i];
+				}
+			}
 			this.preferredBackground = (byte) IntArrays.indexOfMax(colorCountByPixel);
 
 			Logger.debug("Colors: count={}, preferred bg={}, dark-to-light color order={}",
 					Arrays.toString(colorCountByPixel),
 					String.format("%01X", this.preferredBackground),
-					this.colorOrder.stream().map(i -> String.format("%01X", i)).collect(Collectors.joining()));
+					formatColorOrder(this.colorOrder));
+		}
+
+		/**
+		 * @param charset the charset
+		 * @param excludedLines the excluded lines
+		 * @return the color count of the lines of the charset that are not excluded
+		 */
+		private static int[] nonExcludedColorCount(final MsxCharset charset, final BitSet excludedLines) {
+
+			final int n = charset.size();
+
+			// (all the lines are excluded)
+			if (excludedLines.nextClearBit(0) >= n) {
+				return charset.colorCount(MsxLine::colorCountByPixel);
+			}
+
+			int[] colorCount = null;
+			for (int i = excludedLines.nextClearBit(0); i < n; i = excludedLines.nextClearBit(i + 1)) {
+				final int[] lineColorCount = charset.get(i).colorCountByPixel();
+				if (colorCount == null) {
+					colorCount = new int[lineColorCount.length];
+				}
+				for (int j = 0, m = Math.min(colorCount.length, lineColorCount.length); j < m; j++) {
+					colorCount[j] += lineColorCount[j];
+				}
+			}
+			return colorCount;
+		}
+
+		/**
+		 * @param prefix the prefix charset (can be {@code null})
+		 * @param backwards {@code true} if the prefix follows the charset
+		 * @return the distinct lines of the prefix, from its last line to its first one
+		 * (or from its first line to its last one, if backwards)
+		 */
+		private static List<MsxLine> distinctLines(final MsxCharset prefix, final boolean backwards) {
+
+			if (prefix == null) {
+				return Collections.emptyList();
+			}
+
+			final byte[] chrtbl = prefix.chrtbl();
+			final byte[] clrtbl = prefix.clrtbl();
+			final Set<Integer> keys = new HashSet<>();
+			final List<MsxLine> list = new ArrayList<>();
+			for (int j = 0, n = prefix.size(); j < n; j++) {
+				final int i = backwards ? j : n - 1 - j;
+				if (keys.add(((chrtbl[i] & 0xff) << 8) | (clrtbl[i] & 0xff))) {
+					list.add(prefix.get(i));
+				}
+			}
+			return list;
 		}
 
 		private transient MsxLine previousValue;
@@ -170,11 +424,16 @@ public class MsxCharsetOptimizer {
 			// (creates a mutable instance)
 			final MsxCharset optimizedCharset = MsxCharset.copyOf(this.charset);
 
-			this.previousValue = MsxLine.backgroundOfColor(this.preferredBackground);
-			for (int i = 0, n = this.charset.size(); i < n; i++) {
+			// (the stream continues after the last line of the prefix, if any,
+			// or after its first line, if backwards)
+			this.previousValue = this.prefix == null ? MsxLine.backgroundOfColor(this.preferredBackground)
+					: this.backwards ? this.prefix.get(0)
+					: this.prefix.get(this.prefix.size() - 1);
+			for (int j = 0, n = this.charset.size(); j < n; j++) {
+				final int i = this.backwards ? n - 1 - j : j;
 				final MsxLine candidate = this.charset.get(i);
 
-				final boolean isExcluded = (this.exclusion != null) && this.exclusion.contains(i);
+				final boolean isExcluded = this.excludedLines.get(i);
 				final MsxLine optimized = isExcluded ? candidate : this.optimize(candidate);
 				optimizedCharset.set(i, optimized);
 
@@ -203,7 +462,15 @@ public class MsxCharsetOptimizer {
 
 		private MsxLine optimizeSingleColor(final MsxLine candidate) {
 
+			// Attempts to reuse the encoding of an equivalent line of the prefix
+			final MsxLine prefixLine = this.prefixLineEquivalentTo(candidate);
+
 			if (this.strippedImage) {
+				if (prefixLine != null) {
+					this.debug(candidate, prefixLine, "Same as prefix line");
+					return prefixLine;
+				}
+
 				// This seems to yield better compression ratios than more complex algorithms
 				// for stripped images that have rapidly changing either CHRLTBL or CLRTBL bytes
 				final MsxLine optimized = MsxLine.foregroundOf(candidate.singleColor(), this.preferredBackground);
@@ -226,6 +493,11 @@ public class MsxCharsetOptimizer {
 				return optimized;
 			}
 
+			if (prefixLine != null) {
+				this.debug(candidate, prefixLine, "Same as prefix line");
+				return prefixLine;
+			}
+
 			final int referenceIndex = this.colorOrder.indexOf(this.preferredBackground);
 			final int singleColorIndex = this.colorOrder.indexOf(singleColor);
 			final boolean isBackground = (referenceIndex < 8) == (singleColorIndex < 8);
@@ -255,6 +527,13 @@ public class MsxCharsetOptimizer {
 				return optimized;
 			}
 
+			// Attempts to reuse the encoding of an equivalent line of the prefix
+			final MsxLine prefixLine = this.prefixLineEquivalentTo(candidate);
+			if (prefixLine != null) {
+				this.debug(candidate, prefixLine, "Same as prefix line");
+				return prefixLine;
+			}
+
 			// Attempts to use the preferred background
 			if (candidate.bg() == this.preferredBackground) {
 				final MsxLine optimized = candidate;
@@ -290,6 +569,21 @@ public class MsxCharsetOptimizer {
 			return optimized;
 		}
 
+		/**
+		 * @param candidate the MSX line to be optimized
+		 * @return the closest line of the prefix that is equivalent to the candidate,
+		 * or {@code null} if there is no such line
+		 */
+		private MsxLine prefixLineEquivalentTo(final MsxLine candidate) {
+
+			for (final MsxLine prefixLine : this.prefixLines) {
+				if (candidate.isEquivalentTo(prefixLine)) {
+					return prefixLine;
+				}
+			}
+			return null;
+		}
+
 		private void debug(final MsxLine from, final MsxLine to, final String message) {
 
 			if (!Logger.isDebugEnabled()) {
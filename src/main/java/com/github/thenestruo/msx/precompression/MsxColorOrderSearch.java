@@ -0,0 +1,184 @@
+package com.github.thenestruo.msx.precompression;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import org.tinylog.Logger;
+
+import com.github.thenestruo.commons.msx.MsxCharset;
+
+/**
+ * Searches for the {@link MsxCharsetOptimizer#setColorOrder(List) color order}
+ * that minimizes the estimated compressed size of a corpus of charsets,
+ * using parallel, independent simulated annealing chains over the color permutations.
+ */
+public class MsxColorOrderSearch {
+
+	private Supplier<MsxCharsetOptimizer> optimizerSupplier = MsxCharsetOptimizer::new;
+
+	/**
+	 * @param optimizerSupplier supplies the (already configured) optimizers to be used;
+	 * as their color order will be overwritten, a new instance must be supplied on each invocation
+	 */
+	public MsxColorOrderSearch setOptimizerSupplier(final Supplier<MsxCharsetOptimizer> optimizerSupplier) {
+		this.optimizerSupplier = Objects.requireNonNull(optimizerSupplier);
+		return this;
+	}
+
+	private int chains = Runtime.getRuntime().availableProcessors();
+
+	public MsxColorOrderSearch setChains(final int chains) {
+		this.chains = Math.max(1, chains);
+		return this;
+	}
+
+	private int iterations = 1000;
+
+	public MsxColorOrderSearch setIterations(final int iterations) {
+		this.iterations = Math.max(0, iterations);
+		return this;
+	}
+
+	private long seed = 0L;
+
+	public MsxColorOrderSearch setSeed(final long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	//
+
+	public List<Byte> search(final List<MsxCharset> corpus) {
+
+		return new Process(Collections.unmodifiableList(new ArrayList<>(corpus)), this.optimizerSupplier)
+				.search(this.chains, this.iterations, this.seed);
+	}
+
+	/**
+	 * Fast estimation of the compressed size of a charset:
+	 * the number of bytes, in both CHRTBL and CLRTBL, that repeat neither the previous byte
+	 * nor the byte of the same line of the previous character (i.e.: the likely literals)
+	 * @param charset the charset
+	 * @return the estimated compressed size
+	 */
+	public static int estimateSize(final MsxCharset charset) {
+
+		return estimateSize(charset.chrtbl()) + estimateSize(charset.clrtbl());
+	}
+
+	private static int estimateSize(final byte[] bytes) {
+
+		int literals = 0;
+		for (int i = 0, n = bytes.length; i < n; i++) {
+			final boolean isRepetition = ((i >= 1) && (bytes[i] == bytes[i - 1]))
+					|| ((i >= 8) && (bytes[i] == bytes[i - 8]));
+			if (!isRepetition) {
+				literals++;
+			}
+		}
+		return literals;
+	}
+
+	//
+
+	private static class Process {
+
+		private final List<MsxCharset> corpus;
+
+		private final Supplier<MsxCharsetOptimizer> optimizerSupplier;
+
+		/** Estimated sizes, by formatted color order (shared between the chains) */
+		private final Map<String, Integer> cache = new ConcurrentHashMap<>();
+
+		//
+
+		private Process(final List<MsxCharset> corpus, final Supplier<MsxCharsetOptimizer> optimizerSupplier) {
+			this.corpus = corpus;
+			this.optimizerSupplier = optimizerSupplier;
+		}
+
+		public List<Byte> search(final int chains, final int iterations, final long seed) {
+
+			final List<Byte> initialColorOrder = MsxCharsetOptimizer.DEFAULT_COLOR_ORDER;
+			final int initialScore = this.score(initialColorOrder);
+			Logger.debug("Initial color order: {}, estimated size={}",
+					MsxCharsetOptimizer.formatColorOrder(initialColorOrder), initialScore);
+
+			final List<Byte> bestColorOrder = IntStream.range(0, chains)
+					.parallel()
+					.mapToObj(chain -> this.anneal(initialColorOrder, initialScore, iterations, new Random(seed + chain)))
+					.min(Comparator.<List<Byte>>comparingInt(this::score)
+							.thenComparing(MsxCharsetOptimizer::formatColorOrder))
+					.orElse(initialColorOrder);
+
+			Logger.debug("Best color order: {}, estimated size={}",
+					MsxCharsetOptimizer.formatColorOrder(bestColorOrder), this.score(bestColorOrder));
+			return Collections.unmodifiableList(bestColorOrder);
+		}
+
+		private List<Byte> anneal(final List<Byte> initialColorOrder, final int initialScore,
+				final int iterations, final Random random) {
+
+			// (starts accepting changes worth a 0.1% of the initial size)
+			final double initialTemperature = Math.max(1.0d, initialScore / 1000.0d);
+
+			List<Byte> current = initialColorOrder;
+			int currentScore = initialScore;
+			List<Byte> best = current;
+			int bestScore = currentScore;
+
+			for (int k = 0; k < iterations; k++) {
+				final double temperature = initialTemperature * (1.0d - ((double) k / iterations));
+
+				// Neighbour: swaps two different colors
+				final List<Byte> candidate = new ArrayList<>(current);
+				final int n = candidate.size();
+				final int i = random.nextInt(n);
+				final int j = (i + 1 + random.nextInt(n - 1)) % n;
+				Collections.swap(candidate, i, j);
+				final int candidateScore = this.score(candidate);
+
+				final int delta = candidateScore - currentScore;
+				if ((delta <= 0) || (random.nextDouble() < Math.exp(-delta / temperature))) {
+					current = candidate;
+					currentScore = candidateScore;
+				}
+				if (currentScore < bestScore) {
+					best = current;
+					bestScore = currentScore;
+				}
+			}
+
+			Logger.trace("Chain best color order: {}, estimated size={}",
+					MsxCharsetOptimizer.formatColorOrder(best), bestScore);
+			return best;
+		}
+
+		private int score(final List<Byte> colorOrder) {
+
+			final String key = MsxCharsetOptimizer.formatColorOrder(colorOrder);
+			final Integer cachedScore = this.cache.get(key);
+			if (cachedScore != null) {
+				return cachedScore.intValue();
+			}
+
+			// (computed outside the map, so other chains are not blocked;
+			// two chains may compute the same score, but the result is the same)
+			final MsxCharsetOptimizer optimizer = this.optimizerSupplier.get().setColorOrder(colorOrder);
+			int score = 0;
+			for (final MsxCharset charset : this.corpus) {
+				score += estimateSize(optimizer.optimize(charset));
+			}
+			final Integer previousScore = this.cache.putIfAbsent(key, score);
+			return previousScore != null ? previousScore.intValue() : score;
+		}
+	}
+}
@@ -4,6 +4,9 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.concurrent.Callable;
 
 import org.tinylog.Logger;
@@ -41,10 +44,33 @@ public class PrecompressApp implements Callable<Integer> {
 	@Parameters(index = "1", arity = "0..1", paramLabel = "clrtbl", description = "binary input file(s): CLRTBL")
 	private Path clrtblInputPath;
 
+	@Option(names = { "-f", "--frame" }, paramLabel = "chrtbl",
+			description = "binary input file(s): CHRTBL of the following animation frames")
+	private List<Path> frameChrtblInputPaths;
+
 	@Option(names = { "-e", "--exclude" },
 			converter = ExclusionTypeConverter.class,
-			description = "Excluded range of addresses: <from>..<to>")
-	private Range<Integer> exclusionRange;
+			description = "Excluded range(s) of addresses: <from>..<to>")
+	private List<Range<Integer>> exclusionRanges;
+
+	@Option(names = { "-m", "--pin-mask" }, paramLabel = "file",
+			description = "binary pin mask file: one byte per address, non-zero to exclude the address")
+	private Path pinMaskInputPath;
+
+	@Option(names = { "-x", "--ignore-excluded-colors" },
+			description = "excluded addresses do not count toward the preferred background")
+	private boolean ignoreExcludedColors;
+
+	@Option(names = { "-p", "--prefix" }, paramLabel = "chrtbl",
+			description = "binary prefix file: CHRTBL of the charset that precedes this one in the compressed stream")
+	private Path prefixChrtblInputPath;
+
+	@Option(names = { "-b", "--backwards" }, description = "optimize for backwards compression (e.g.: ZX0 -b)")
+	private boolean backwards;
+
+	@Option(names = { "-c", "--color-order" }, paramLabel = "file",
+			description = "text file with the color order to use (e.g.: learned by LearnColorOrderApp)")
+	private Path colorOrderInputPath;
 
 	@Option(names = { "-s", "--stripped" }, description = "force stripped image")
 	private boolean forceStrippedImage;
@@ -76,15 +102,15 @@ public class PrecompressApp implements Callable<Integer> {
 	public Integer call() throws IOException {
 
 		// (before using tinylog)
-		this.handleVerbose();
+		handleVerbose(this.verbose, this.veryVerbose);
 
 		// Reads the binary files
-		final byte[] chrtblBytes = this.readBinary(this.chrtblInputPath);
+		final byte[] chrtblBytes = readBinary(this.chrtblInputPath);
 		if (chrtblBytes == null) {
 			return 10;
 		}
 
-		final byte[] clrtblBytes = this.readBinary(this.clrtblInputPath());
+		final byte[] clrtblBytes = readBinary(this.clrtblInputPath());
 		if (clrtblBytes == null) {
 			return 20;
 		}
@@ -96,28 +122,147 @@ public class PrecompressApp implements Callable<Integer> {
 			return 30;
 		}
 
-		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
-				.setExclusion(this.exclusionRange)
+		// Reads the optional prefix binary files
+		MsxCharset prefix = null;
+		if (this.prefixChrtblInputPath != null) {
+			final Path prefixClrtblInputPath = clrtblPathOf(this.prefixChrtblInputPath);
+			if (prefixClrtblInputPath == null) {
+				Logger.warn("Prefix binary file {} does not have .chr extension: CLRTBL cannot be located",
+						this.prefixChrtblInputPath);
+				return 40;
+			}
+			final byte[] prefixChrtblBytes = readBinary(this.prefixChrtblInputPath);
+			final byte[] prefixClrtblBytes = readBinary(prefixClrtblInputPath);
+			if ((prefixChrtblBytes == null) || (prefixClrtblBytes == null)) {
+				return 40;
+			}
+			if (prefixChrtblBytes.length != prefixClrtblBytes.length) {
+				Logger.warn("Prefix binary files sizes differ: {} bytes, {} bytes",
+						prefixChrtblBytes.length, prefixClrtblBytes.length);
+				return 40;
+			}
+			Logger.debug("Prefix binary files read: {} bytes", prefixChrtblBytes.length);
+			prefix = MsxCharset.of(prefixChrtblBytes, prefixClrtblBytes);
+		}
+
+		// Reads the optional pin mask file
+		BitSet pinnedLines = null;
+		if (this.pinMaskInputPath != null) {
+			final byte[] pinMaskBytes = readBinary(this.pinMaskInputPath);
+			if (pinMaskBytes == null) {
+				return 70;
+			}
+			if (pinMaskBytes.length != chrSize) {
+				Logger.warn("Pin mask file {} size differs from CHRTBL: {} bytes, {} bytes",
+						this.pinMaskInputPath, pinMaskBytes.length, chrSize);
+				return 70;
+			}
+			pinnedLines = new BitSet(pinMaskBytes.length);
+			for (int i = 0; i < pinMaskBytes.length; i++) {
+				if (pinMaskBytes[i] != 0) {
+					pinnedLines.set(i);
+				}
+			}
+			Logger.debug("Pin mask read: {} pinned addresses", pinnedLines.cardinality());
+		}
+
+		// Reads the optional color order file
+		List<Byte> colorOrder = null;
+		if (this.colorOrderInputPath != null) {
+			if (!Files.exists(this.colorOrderInputPath)) {
+				Logger.warn("Color order file {} does not exist", this.colorOrderInputPath);
+				return 50;
+			}
+			try {
+				colorOrder = MsxCharsetOptimizer.parseColorOrder(Files.readString(this.colorOrderInputPath));
+			} catch (final IllegalArgumentException e) {
+				Logger.warn("Color order file {} is not valid: {}", this.colorOrderInputPath, e.getMessage());
+				return 50;
+			}
+			Logger.debug("Color order read: {}", MsxCharsetOptimizer.formatColorOrder(colorOrder));
+		}
+
+		final MsxCharsetOptimizer optimizer = new MsxCharsetOptimizer()
+				.setColorOrder(colorOrder)
+				.setExclusions(this.exclusionRanges)
+				.setPinnedLines(pinnedLines)
+				.setExcludedLinesColorCounted(!this.ignoreExcludedColors)
+				.setPrefix(prefix)
+				.setBackwards(this.backwards)
 				.setForceStrippedImage(
 					  this.forceStrippedImage    ? Boolean.TRUE
 					: this.forceNonStrippedImage ? Boolean.FALSE
-					: null)
-				.optimize(MsxCharset.of(chrtblBytes, clrtblBytes));
+					: null);
+
+		if ((this.frameChrtblInputPaths != null) && !this.frameChrtblInputPaths.isEmpty()) {
+			return this.callFrames(optimizer, MsxCharset.of(chrtblBytes, clrtblBytes));
+		}
+
+		final MsxCharset optimizedCharset = optimizer.optimize(MsxCharset.of(chrtblBytes, clrtblBytes));
 
 		// Writes the optimized file
-		Logger.debug("Binary files to be written: {}, {}", this.chrtblOutputPath(), this.clrtblOutputPath());
-		Files.write(this.chrtblOutputPath(), optimizedCharset.chrtbl(), StandardOpenOption.CREATE);
-		Files.write(this.clrtblOutputPath(), optimizedCharset.clrtbl(), StandardOpenOption.CREATE);
-		Logger.debug("Binary files {}, {} written", this.chrtblOutputPath(), this.clrtblOutputPath());
+		writeBinaries(this.chrtblOutputPath(), this.clrtblOutputPath(), optimizedCharset);
 
 		return 0;
 	}
 
-	private void handleVerbose() {
+	private Integer callFrames(final MsxCharsetOptimizer optimizer, final MsxCharset firstFrame) throws IOException {
+
+		// Reads the binary files of the following animation frames
+		final List<MsxCharset> frames = new ArrayList<>();
+		frames.add(firstFrame);
+		for (final Path frameChrtblInputPath : this.frameChrtblInputPaths) {
+			final byte[] frameChrtblBytes = readBinary(frameChrtblInputPath);
+			final byte[] frameClrtblBytes = readBinary(clrtblPathOf(frameChrtblInputPath));
+			if ((frameChrtblBytes == null) || (frameClrtblBytes == null)) {
+				return 60;
+			}
+			if (frameChrtblBytes.length != frameClrtblBytes.length) {
+				Logger.warn("Frame binary files sizes differ: {} bytes, {} bytes",
+						frameChrtblBytes.length, frameClrtblBytes.length);
+				return 60;
+			}
+			if (frameChrtblBytes.length != firstFrame.size()) {
+				Logger.warn("Frame binary file {} size differs from the first frame: {} bytes, {} bytes",
+						frameChrtblInputPath, frameChrtblBytes.length, firstFrame.size());
+				return 60;
+			}
+			Logger.debug("Frame binary files read: {} bytes", frameChrtblBytes.length);
+			frames.add(MsxCharset.of(frameChrtblBytes, frameClrtblBytes));
+		}
 
-		if (this.veryVerbose) {
+		final List<MsxCharset> optimizedFrames = optimizer.optimizeFrames(frames);
+
+		// Delta size statistics
+		int totalDeltaSize = 0;
+		int totalOptimizedDeltaSize = 0;
+		for (int k = 1, n = frames.size(); k < n; k++) {
+			final int deltaSize = MsxCharsetOptimizer.deltaSize(frames.get(k - 1), frames.get(k));
+			final int optimizedDeltaSize = MsxCharsetOptimizer.deltaSize(optimizedFrames.get(k - 1), optimizedFrames.get(k));
+			Logger.info("Frame {}: {} bytes differ (was: {} bytes)", k, optimizedDeltaSize, deltaSize);
+			totalDeltaSize += deltaSize;
+			totalOptimizedDeltaSize += optimizedDeltaSize;
+		}
+		Logger.info("Total: {} bytes differ (was: {} bytes)", totalOptimizedDeltaSize, totalDeltaSize);
+
+		// Writes the optimized files
+		writeBinaries(this.chrtblOutputPath(), this.clrtblOutputPath(), optimizedFrames.get(0));
+		for (int k = 1, n = optimizedFrames.size(); k < n; k++) {
+			final Path frameChrtblInputPath = this.frameChrtblInputPaths.get(k - 1);
+			writeBinaries(
+					outputPathOf(frameChrtblInputPath),
+					outputPathOf(clrtblPathOf(frameChrtblInputPath)),
+					optimizedFrames.get(k));
+		}
+
+		return 0;
+	}
+
+	static void handleVerbose(final boolean verbose, final boolean veryVerbose) {
+
+		if (veryVerbose) {
 			Configuration.set("writer.level", "trace");
-		} else if (this.verbose) {
+		} else if (verbose) {
 			Configuration.set("writer.level", "debug");
 		}
 	}
@@ -128,8 +273,13 @@ public class PrecompressApp implements Callable<Integer> {
 			return this.clrtblInputPath;
 		}
 
-		if (Paths.endsWith(this.chrtblInputPath, ".chr")) {
-			return Paths.append(Paths.removeEnd(this.chrtblInputPath, ".chr"), ".clr");
+		return clrtblPathOf(this.chrtblInputPath);
+	}
+
+	static Path clrtblPathOf(final Path chrtblPath) {
+
+		if (Paths.endsWith(chrtblPath, ".chr")) {
+			return Paths.append(Paths.removeEnd(chrtblPath, ".chr"), ".clr");
 		}
 
 		return null;
@@ -137,15 +287,57 @@ public class PrecompressApp implements Callable<Integer> {
 
 	private Path chrtblOutputPath() {
 
-		return this.chrtblInputPath.resolveSibling(String.format("%s.opt", this.chrtblInputPath.getFileName()));
+		return outputPathOf(this.chrtblInputPath);
 	}
 
 	private Path clrtblOutputPath() {
 
-		return this.clrtblInputPath().resolveSibling(String.format("%s.opt", this.clrtblInputPath().getFileName()));
+		return outputPathOf(this.clrtblInputPath());
+	}
+
+	private static Path outputPathOf(final Path inputPath) {
+
+		return inputPath.resolveSibling(String.format("%s.opt", inputPath.getFileName()));
+	}
+
+	private static void writeBinaries(final Path chrtblPath, final Path clrtblPath, final MsxCharset charset)
+			throws IOException {
+
+		Logger.debug("Binary files to be written: {}, {}", chrtblPath, clrtblPath);
+		Files.write(chrtblPath, charset.chrtbl(), StandardOpenOption.CREATE);
+		Files.write(clrtblPath, charset.clrtbl(), StandardOpenOption.CREATE);
+		Logger.debug("Binary files {}, {} written", chrtblPath, clrtblPath);
+	}
+
+	/**
+	 * @param chrtblPath the CHRTBL binary file (the CLRTBL is expected alongside, with .clr extension)
+	 * @return the charset, or {@code null} if the binary files cannot be read or are not valid
+	 */
+	static MsxCharset readCharset(final Path chrtblPath) throws IOException {
+
+		final Path clrtblPath = clrtblPathOf(chrtblPath);
+		if (clrtblPath == null) {
+			Logger.warn("Binary input file {} does not have .chr extension: CLRTBL cannot be located", chrtblPath);
+			return null;
+		}
+
+		final byte[] chrtblBytes = readBinary(chrtblPath);
+		final byte[] clrtblBytes = readBinary(clrtblPath);
+		if ((chrtblBytes == null) || (clrtblBytes == null)) {
+			return null;
+		}
+
+		Logger.debug("Binary files read: {} bytes, {} bytes", chrtblBytes.length, clrtblBytes.length);
+		if ((chrtblBytes.length == 0) || (chrtblBytes.length != clrtblBytes.length)) {
+			Logger.warn("Binary input files {}, {} are empty or their sizes differ: {} bytes, {} bytes",
+					chrtblPath, clrtblPath, chrtblBytes.length, clrtblBytes.length);
+			return null;
+		}
+
+		return MsxCharset.of(chrtblBytes, clrtblBytes);
 	}
 
-	private byte[] readBinary(final Path path) throws IOException {
+	static byte[] readBinary(final Path path) throws IOException {
 
 		// (sanity check)
 		if (path == null) {
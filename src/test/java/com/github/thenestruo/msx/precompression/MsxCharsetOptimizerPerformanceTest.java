@@ -1,7 +1,6 @@
 package com.github.thenestruo.msx.precompression;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -14,14 +13,13 @@ import java.util.stream.Stream;
 
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Assertions;
-import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 import org.tinylog.Logger;
 
-import com.github.thenestruo.commons.io.ClassPathResource;
 import com.github.thenestruo.commons.maps.Pair;
 import com.github.thenestruo.commons.math.IntStats;
 import com.github.thenestruo.commons.msx.MsxCharset;
@@ -58,15 +56,9 @@ public class MsxCharsetOptimizerPerformanceTest {
 
 		// Given
 
-		final byte[] chrBytes;
-		final byte[] clrBytes;
-		try (
-				final InputStream chrInputStream = new ClassPathResource(filename + ".chr").getInputStream();
-				final InputStream clrInputStream = new ClassPathResource(filename + ".clr").getInputStream()) {
-			chrBytes = chrInputStream.readAllBytes();
-			clrBytes = clrInputStream.readAllBytes();
-		}
-		Assumptions.assumeTrue(chrBytes.length == clrBytes.length);
+		final MsxCharset referenceCharset = TestCharsets.readCharset(filename);
+		final byte[] chrBytes = referenceCharset.chrtbl();
+		final byte[] clrBytes = referenceCharset.clrtbl();
 		final int referenceUncompressedChrSize = chrBytes.length;
 		final int referenceUncompressedClrSize = clrBytes.length;
 		final int referenceUncompressedTotalSize = referenceUncompressedChrSize + referenceUncompressedClrSize;
@@ -74,8 +66,6 @@ public class MsxCharsetOptimizerPerformanceTest {
 				.computeIfAbsent(label, x -> new IntStats())
 				.add(referenceUncompressedTotalSize);
 
-		final MsxCharset referenceCharset = MsxCharset.of(chrBytes, clrBytes);
-
 		// When
 
 		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
@@ -172,6 +162,63 @@ public class MsxCharsetOptimizerPerformanceTest {
 		return list.stream();
 	}
 
+	@Test
+	void learnedColorOrderPerformanceTest() throws IOException {
+
+		// Given
+
+		final List<MsxCharset> corpus = new ArrayList<>();
+		for (final String filename : FILENAMES) {
+			corpus.add(TestCharsets.readCharset(filename));
+		}
+
+		// When
+
+		final List<Byte> learnedColorOrder = new MsxColorOrderSearch()
+				.setChains(4)
+				.setIterations(200)
+				.search(corpus);
+
+		// Then (the estimated size is a proxy: checks the actual compressed sizes)
+
+		int defaultZx0TotalSize = 0;
+		int learnedZx0TotalSize = 0;
+		for (int i = 0, n = FILENAMES.size(); i < n; i++) {
+			final MsxCharset referenceCharset = corpus.get(i);
+
+			final MsxCharset defaultCharset = new MsxCharsetOptimizer()
+					.optimize(referenceCharset);
+			final MsxCharset learnedCharset = new MsxCharsetOptimizer()
+					.setColorOrder(learnedColorOrder)
+					.optimize(referenceCharset);
+
+			for (int j = 0, m = referenceCharset.size(); j < m; j++) {
+				Assertions.assertTrue(
+						referenceCharset.get(j).isEquivalentTo(learnedCharset.get(j)),
+						"Expected " + referenceCharset.get(j) + ", but found: " + learnedCharset.get(j));
+			}
+
+			final int defaultZx0Size = zx0(defaultCharset.chrtbl()).length + zx0(defaultCharset.clrtbl()).length;
+			final int learnedZx0Size = zx0(learnedCharset.chrtbl()).length + zx0(learnedCharset.clrtbl()).length;
+			defaultZx0TotalSize += defaultZx0Size;
+			learnedZx0TotalSize += learnedZx0Size;
+
+			Logger.info(String.format("""
+					B:%4d [%+5d] (est:%4d [%+5d]) <- B:%4d (est:%4d) :: %s :: learned %s""",
+					learnedZx0Size, learnedZx0Size - defaultZx0Size,
+					MsxColorOrderSearch.estimateSize(learnedCharset),
+					MsxColorOrderSearch.estimateSize(learnedCharset) - MsxColorOrderSearch.estimateSize(defaultCharset),
+					defaultZx0Size, MsxColorOrderSearch.estimateSize(defaultCharset),
+					FILENAMES.get(i), MsxCharsetOptimizer.formatColorOrder(learnedColorOrder)));
+		}
+
+		Logger.info(String.format("""
+				Total :: B:%4d [%+5d] <- B:%4d :: learned %s""",
+				learnedZx0TotalSize, learnedZx0TotalSize - defaultZx0TotalSize,
+				defaultZx0TotalSize,
+				MsxCharsetOptimizer.formatColorOrder(learnedColorOrder)));
+	}
+
 	@AfterAll
 	static void afterAll() {
 
@@ -208,10 +255,184 @@ public class MsxCharsetOptimizerPerformanceTest {
 		}
 	}
 
+	@ParameterizedTest
+	@MethodSource("backwardsPerformanceTestArguments")
+	void backwardsPerformanceTest(final String filename) throws IOException {
+
+		// Given
+
+		final MsxCharset referenceCharset = TestCharsets.readCharset(filename);
+
+		// When
+
+		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
+				.optimize(referenceCharset);
+		final MsxCharset backwardsOptimizedCharset = new MsxCharsetOptimizer()
+				.setBackwards(true)
+				.optimize(referenceCharset);
+
+		// Then
+
+		for (int i = 0, n = referenceCharset.size(); i < n; i++) {
+			Assertions.assertTrue(
+					referenceCharset.get(i).isEquivalentTo(backwardsOptimizedCharset.get(i)),
+					"Expected " + referenceCharset.get(i) + ", but found: " + backwardsOptimizedCharset.get(i));
+		}
+
+		// Performance traces (all of them compressed in backwards mode)
+
+		final int referenceZx0TotalSize = zx0Backwards(referenceCharset);
+		final int zx0TotalSize = zx0Backwards(optimizedCharset);
+		final int backwardsZx0TotalSize = zx0Backwards(backwardsOptimizedCharset);
+
+		Logger.info(String.format("""
+				B:%4d [%+5d] <- B:%4d [%+5d] <- B:%4d :: %s :: backwards""",
+				backwardsZx0TotalSize, backwardsZx0TotalSize - zx0TotalSize,
+				zx0TotalSize, zx0TotalSize - referenceZx0TotalSize,
+				referenceZx0TotalSize,
+				filename));
+	}
+
+	private static Stream<Arguments> backwardsPerformanceTestArguments() {
+
+		return FILENAMES.stream().map(Arguments::of);
+	}
+
+	@ParameterizedTest
+	@MethodSource("prefixPerformanceTestArguments")
+	void prefixPerformanceTest(final String prefixFilename, final String filename) throws IOException {
+
+		// Given
+
+		final MsxCharset prefixCharset = TestCharsets.readCharset(prefixFilename);
+		final MsxCharset referenceCharset = TestCharsets.readCharset(filename);
+
+		// When
+
+		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
+				.optimize(referenceCharset);
+		final MsxCharset prefixOptimizedCharset = new MsxCharsetOptimizer()
+				.setPrefix(prefixCharset)
+				.optimize(referenceCharset);
+
+		// Then
+
+		for (int i = 0, n = referenceCharset.size(); i < n; i++) {
+			Assertions.assertTrue(
+					referenceCharset.get(i).isEquivalentTo(prefixOptimizedCharset.get(i)),
+					"Expected " + referenceCharset.get(i) + ", but found: " + prefixOptimizedCharset.get(i));
+		}
+
+		// Performance traces (the prefix is skipped, but still usable as dictionary)
+
+		final int referenceZx0TotalSize = zx0(prefixCharset, referenceCharset, false);
+		final int zx0TotalSize = zx0(prefixCharset, optimizedCharset, false);
+		final int prefixZx0TotalSize = zx0(prefixCharset, prefixOptimizedCharset, false);
+
+		Logger.info(String.format("""
+				B:%4d [%+5d] <- B:%4d [%+5d] <- B:%4d :: %s + %s :: prefix""",
+				prefixZx0TotalSize, prefixZx0TotalSize - zx0TotalSize,
+				zx0TotalSize, zx0TotalSize - referenceZx0TotalSize,
+				referenceZx0TotalSize,
+				prefixFilename, filename));
+	}
+
+	@ParameterizedTest
+	@MethodSource("prefixPerformanceTestArguments")
+	void backwardsPrefixPerformanceTest(final String prefixFilename, final String filename) throws IOException {
+
+		// Given
+
+		final MsxCharset prefixCharset = TestCharsets.readCharset(prefixFilename);
+		final MsxCharset referenceCharset = TestCharsets.readCharset(filename);
+
+		// When
+
+		final MsxCharset backwardsOptimizedCharset = new MsxCharsetOptimizer()
+				.setBackwards(true)
+				.optimize(referenceCharset);
+		final MsxCharset backwardsPrefixOptimizedCharset = new MsxCharsetOptimizer()
+				.setPrefix(prefixCharset)
+				.setBackwards(true)
+				.optimize(referenceCharset);
+
+		// Then
+
+		for (int i = 0, n = referenceCharset.size(); i < n; i++) {
+			Assertions.assertTrue(
+					referenceCharset.get(i).isEquivalentTo(backwardsPrefixOptimizedCharset.get(i)),
+					"Expected " + referenceCharset.get(i) + ", but found: " + backwardsPrefixOptimizedCharset.get(i));
+		}
+
+		// Performance traces (backwards mode: the prefix follows the charset, skipped but still usable as dictionary)
+
+		final int referenceZx0TotalSize = zx0(prefixCharset, referenceCharset, true);
+		final int zx0TotalSize = zx0(prefixCharset, backwardsOptimizedCharset, true);
+		final int prefixZx0TotalSize = zx0(prefixCharset, backwardsPrefixOptimizedCharset, true);
+
+		Logger.info(String.format("""
+				B:%4d [%+5d] <- B:%4d [%+5d] <- B:%4d :: %s + %s :: backwards prefix""",
+				prefixZx0TotalSize, prefixZx0TotalSize - zx0TotalSize,
+				zx0TotalSize, zx0TotalSize - referenceZx0TotalSize,
+				referenceZx0TotalSize,
+				filename, prefixFilename));
+	}
+
+	private static Stream<Arguments> prefixPerformanceTestArguments() {
+
+		final List<Arguments> list = new ArrayList<>();
+		for (final String prefixFilename : FILENAMES) {
+			for (final String filename : FILENAMES) {
+				if (!prefixFilename.equals(filename)) {
+					list.add(Arguments.of(prefixFilename, filename));
+				}
+			}
+		}
+		return list.stream();
+	}
+
+	/**
+	 * @param prefix the prefix charset (skipped, but still usable as dictionary)
+	 * @param charset the charset
+	 * @param backwardsMode true to compress in backwards mode (the prefix then follows the charset)
+	 * @return the total (CHRTBL + CLRTBL) compressed size of the charset
+	 */
+	private static int zx0(final MsxCharset prefix, final MsxCharset charset, final boolean backwardsMode) {
+
+		return zx0(prefix.chrtbl(), charset.chrtbl(), backwardsMode).length
+				+ zx0(prefix.clrtbl(), charset.clrtbl(), backwardsMode).length;
+	}
+
+	private static byte[] zx0(final byte[] prefix, final byte[] input, final boolean backwardsMode) {
+
+		// (the prefix precedes the input, or follows it in backwards mode)
+		final byte[] data = new byte[prefix.length + input.length];
+		System.arraycopy(prefix, 0, data, backwardsMode ? input.length : 0, prefix.length);
+		System.arraycopy(input, 0, data, backwardsMode ? 0 : prefix.length, input.length);
+
+		return zx0(data, prefix.length, backwardsMode);
+	}
+
+	/**
+	 * @param charset the charset
+	 * @return the total (CHRTBL + CLRTBL) compressed size of the charset, in backwards mode
+	 */
+	private static int zx0Backwards(final MsxCharset charset) {
+
+		return zx0(charset.chrtbl(), 0, true).length
+				+ zx0(charset.clrtbl(), 0, true).length;
+	}
+
 	private static byte[] zx0(final byte[] input) {
 
-		final int skip = 0;
-		final boolean backwardsMode = false;
+		return zx0(input, 0, false);
+	}
+
+	private static byte[] zx0(final byte[] input, final int skip, final boolean backwardsMode) {
+
+		// (backwards mode compresses the reversed input, so the skipped bytes are the last ones)
+		final byte[] data = backwardsMode ? reversed(input) : input;
+
 		final boolean classicMode = false;
 		final boolean quickMode = true; // false;
 		final int threads = 1;
@@ -220,7 +441,16 @@ public class MsxCharsetOptimizerPerformanceTest {
 
 		return new zx0.Compressor().compress(
 				new zx0.Optimizer().optimize(
-						input, skip, quickMode ? zx0.Main.MAX_OFFSET_ZX7 : zx0.Main.MAX_OFFSET_ZX0, threads, verbose),
-				input, skip, backwardsMode, !classicMode && !backwardsMode, delta);
+						data, skip, quickMode ? zx0.Main.MAX_OFFSET_ZX7 : zx0.Main.MAX_OFFSET_ZX0, threads, verbose),
+				data, skip, backwardsMode, !classicMode && !backwardsMode, delta);
+	}
+
+	private static byte[] reversed(final byte[] input) {
+
+		final byte[] output = new byte[input.length];
+		for (int i = 0, n = input.length; i < n; i++) {
+			output[i] = input[n - 1 - i];
+		}
+		return output;
 	}
 }
@@ -1,17 +1,20 @@
 package com.github.thenestruo.msx.precompression;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
 import java.util.stream.Stream;
 
 import org.junit.jupiter.api.Assertions;
-import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
 
-import com.github.thenestruo.commons.io.ClassPathResource;
+import com.github.thenestruo.commons.math.Range;
 import com.github.thenestruo.commons.msx.MsxCharset;
+import com.github.thenestruo.commons.msx.MsxLine;
 
 public class MsxCharsetOptimizerVerificationTest {
 
@@ -21,21 +24,34 @@ public class MsxCharsetOptimizerVerificationTest {
 
 		// Given
 
-		final byte[] chrBytes;
-		final byte[] clrBytes;
-		try (
-				final InputStream chrInputStream = new ClassPathResource(filename + ".chr").getInputStream();
-				final InputStream clrInputStream = new ClassPathResource(filename + ".clr").getInputStream()) {
-			chrBytes = chrInputStream.readAllBytes();
-			clrBytes = clrInputStream.readAllBytes();
+		final MsxCharset referenceCharset = TestCharsets.readCharset(filename);
+
+		// When
+
+		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
+				.optimize(referenceCharset);
+
+		// Then
+
+		for (int i = 0, n = referenceCharset.size(); i < n; i++) {
+			Assertions.assertTrue(
+					referenceCharset.get(i).isEquivalentTo(optimizedCharset.get(i)),
+					"Expected " + referenceCharset.get(i) + ", but found: " + optimizedCharset.get(i));
 		}
-		Assumptions.assumeTrue(chrBytes.length == clrBytes.length);
+	}
 
-		final MsxCharset referenceCharset = MsxCharset.of(chrBytes, clrBytes);
+	@ParameterizedTest
+	@MethodSource("verificationTestArguments")
+	void backwardsVerificationTest(final String filename) throws IOException {
+
+		// Given
+
+		final MsxCharset referenceCharset = TestCharsets.readCharset(filename);
 
 		// When
 
 		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
+				.setBackwards(true)
 				.optimize(referenceCharset);
 
 		// Then
@@ -47,6 +63,303 @@ public class MsxCharsetOptimizerVerificationTest {
 		}
 	}
 
+	@Test
+	void backwardsDirectionTest() {
+
+		// Given: a single color line between two lines with different colors
+
+		final MsxCharset referenceCharset = charsetOf(
+				new int[] { 0x01, 0x01, 0x01, 0x00, 0x01, 0x01, 0x01, 0x01 },
+				new int[] { 0x32, 0x32, 0x32, 0x52, 0x42, 0x42, 0x42, 0x42 });
+
+		// When
+
+		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.optimize(referenceCharset);
+		final MsxCharset backwardsOptimizedCharset = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.setBackwards(true)
+				.optimize(referenceCharset);
+
+		// Then: the single color line reuses the colors of the previous line (or the next one, if backwards)
+
+		Assertions.assertEquals(referenceCharset.get(2).clrtblByte(), optimizedCharset.get(3).clrtblByte());
+		Assertions.assertEquals(referenceCharset.get(4).clrtblByte(), backwardsOptimizedCharset.get(3).clrtblByte());
+	}
+
+	@Test
+	void backwardsPrefixSeedTest() {
+
+		// Given: prefix (following the charset) starts with the inverted encoding of the charset lines
+
+		final MsxCharset prefixCharset = charsetOf(
+				new int[] { 0xfe, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01 },
+				new int[] { 0xa4, 0x4a, 0x4a, 0x4a, 0x4a, 0x4a, 0x4a, 0x4a });
+		final MsxCharset referenceCharset = charsetOf(
+				new int[] { 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01 },
+				new int[] { 0x4a, 0x4a, 0x4a, 0x4a, 0x4a, 0x4a, 0x4a, 0x4a });
+
+		// When
+
+		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.setPrefix(prefixCharset)
+				.optimize(referenceCharset);
+		final MsxCharset backwardsOptimizedCharset = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.setPrefix(prefixCharset)
+				.setBackwards(true)
+				.optimize(referenceCharset);
+
+		// Then: the last line continues the first line of the prefix (if backwards)
+
+		assertSame(prefixCharset.get(7), optimizedCharset.get(0));
+		assertSame(prefixCharset.get(0), backwardsOptimizedCharset.get(7));
+	}
+
+	@Test
+	void framesTest() {
+
+		// Given: the same single color line, after lines with different colors in each frame
+
+		final MsxCharset frame0 = charsetOf(
+				new int[] { 0x01, 0x01, 0x01, 0x00, 0x01, 0x01, 0x01, 0x01 },
+				new int[] { 0x32, 0x32, 0x32, 0x52, 0x42, 0x42, 0x42, 0x42 });
+		final MsxCharset frame1 = charsetOf(
+				new int[] { 0x01, 0x01, 0x01, 0x00, 0x01, 0x01, 0x01, 0x01 },
+				new int[] { 0x62, 0x62, 0x62, 0x52, 0x42, 0x42, 0x42, 0x42 });
+
+		// When
+
+		final MsxCharsetOptimizer optimizer = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE);
+		final List<MsxCharset> optimizedFrames = optimizer.optimizeFrames(Arrays.asList(frame0, frame1));
+		final MsxCharset independentlyOptimizedFrame0 = optimizer.optimize(frame0);
+		final MsxCharset independentlyOptimizedFrame1 = optimizer.optimize(frame1);
+
+		// Then: the single color line is encoded as in the previous frame
+
+		for (int i = 0, n = frame1.size(); i < n; i++) {
+			Assertions.assertTrue(
+					frame1.get(i).isEquivalentTo(optimizedFrames.get(1).get(i)),
+					"Expected " + frame1.get(i) + ", but found: " + optimizedFrames.get(1).get(i));
+		}
+		Assertions.assertFalse(independentlyOptimizedFrame0.get(3).isSameAs(independentlyOptimizedFrame1.get(3)));
+		assertSame(optimizedFrames.get(0).get(3), optimizedFrames.get(1).get(3));
+		Assertions.assertTrue(
+				MsxCharsetOptimizer.deltaSize(optimizedFrames.get(0), optimizedFrames.get(1))
+				< MsxCharsetOptimizer.deltaSize(independentlyOptimizedFrame0, independentlyOptimizedFrame1));
+	}
+
+	@Test
+	void framesSizeTest() {
+
+		final MsxCharset frame0 = charsetOf(
+				new int[] { 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 },
+				new int[] { 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15 });
+		final MsxCharset frame1 = charsetOf(
+				new int[] { 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 },
+				new int[] { 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15 });
+
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> new MsxCharsetOptimizer().optimizeFrames(Arrays.asList(frame0, frame1)));
+	}
+
+	@Test
+	void exclusionsTest() {
+
+		// Given: alternating lines that are inverted when optimized
+
+		final MsxCharset referenceCharset = charsetOf(
+				new int[] { 0xfe, 0xfc, 0xfe, 0xfc, 0xfe, 0xfc, 0xfe, 0xfc, 0xfe, 0xfc, 0xfe, 0xfc, 0xfe, 0xfc, 0xfe, 0xfc },
+				new int[] { 0x56, 0x57, 0x56, 0x57, 0x56, 0x57, 0x56, 0x57, 0x56, 0x57, 0x56, 0x57, 0x56, 0x57, 0x56, 0x57 });
+		final BitSet pinnedLines = new BitSet();
+		pinnedLines.set(12);
+
+		// When
+
+		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.addExclusion(new Range<>(2, 5))
+				.addExclusion(new Range<>(9, 9))
+				.addExclusion(new Range<>(14, 100))
+				.setPinnedLines(pinnedLines)
+				.optimize(referenceCharset);
+
+		// Then: range bounds are inclusive, and lines out of the ranges are optimized
+
+		final List<Integer> excludedLines = Arrays.asList(2, 3, 4, 5, 9, 12, 14, 15);
+		for (int i = 0, n = referenceCharset.size(); i < n; i++) {
+			assertSame(
+					excludedLines.contains(i) ? referenceCharset.get(i) : referenceCharset.get(i).inverted(),
+					optimizedCharset.get(i));
+		}
+	}
+
+	@Test
+	void exclusionsColorCountTest() {
+
+		// Given: color 5 is the most common color only because of the excluded lines
+
+		final MsxCharset referenceCharset = charsetOf(
+				new int[] { 0x00, 0x00, 0x00, 0x00, 0x00, 0x01, 0x01, 0x01 },
+				new int[] { 0x15, 0x15, 0x15, 0x15, 0x15, 0x56, 0x56, 0x56 });
+
+		// When
+
+		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.setExclusion(0, 4)
+				.optimize(referenceCharset);
+		final MsxCharset colorCountOptimizedCharset = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.setExclusion(0, 4)
+				.setExcludedLinesColorCounted(false)
+				.optimize(referenceCharset);
+
+		// Then: color 5 is used as background only when the excluded lines are counted
+
+		assertSame(referenceCharset.get(5).inverted(), optimizedCharset.get(5));
+		assertSame(referenceCharset.get(5), colorCountOptimizedCharset.get(5));
+	}
+
+	@ParameterizedTest
+	@MethodSource("prefixVerificationTestArguments")
+	void prefixVerificationTest(final String prefixFilename, final String filename) throws IOException {
+
+		// Given
+
+		final MsxCharset prefixCharset = TestCharsets.readCharset(prefixFilename);
+		final MsxCharset referenceCharset = TestCharsets.readCharset(filename);
+
+		// When
+
+		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
+				.setPrefix(prefixCharset)
+				.optimize(referenceCharset);
+
+		// Then
+
+		for (int i = 0, n = referenceCharset.size(); i < n; i++) {
+			Assertions.assertTrue(
+					referenceCharset.get(i).isEquivalentTo(optimizedCharset.get(i)),
+					"Expected " + referenceCharset.get(i) + ", but found: " + optimizedCharset.get(i));
+		}
+	}
+
+	@Test
+	void prefixSeedTest() {
+
+		// Given: prefix ends with the inverted encoding of the charset lines
+
+		final MsxCharset prefixCharset = charsetOf(
+				new int[] { 0x01, 0xfe, 0xfe, 0xfe, 0xfe, 0xfe, 0xfe, 0xfe },
+				new int[] { 0x4a, 0xa4, 0xa4, 0xa4, 0xa4, 0xa4, 0xa4, 0xa4 });
+		final MsxCharset referenceCharset = charsetOf(
+				new int[] { 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01 },
+				new int[] { 0x4a, 0x4a, 0x4a, 0x4a, 0x4a, 0x4a, 0x4a, 0x4a });
+
+		// When
+
+		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.setPrefix(prefixCharset)
+				.optimize(referenceCharset);
+		final MsxCharset optimizedCharsetWithoutPrefix = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.optimize(referenceCharset);
+
+		// Then: the first line continues the last line of the prefix
+
+		assertSame(prefixCharset.get(7), optimizedCharset.get(0));
+		assertSame(referenceCharset.get(0), optimizedCharsetWithoutPrefix.get(0));
+	}
+
+	@Test
+	void prefixEncodingTest() {
+
+		// Given: prefix contains the inverted encoding of the charset lines (but does not end with it)
+
+		final MsxCharset prefixCharset = charsetOf(
+				new int[] { 0xfe, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 },
+				new int[] { 0x32, 0x11, 0x11, 0x11, 0x11, 0x11, 0x11, 0x11 });
+		final MsxCharset referenceCharset = charsetOf(
+				new int[] { 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01 },
+				new int[] { 0x23, 0x23, 0x23, 0x23, 0x23, 0x23, 0x23, 0x23 });
+
+		// When
+
+		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.setPrefix(prefixCharset)
+				.optimize(referenceCharset);
+		final MsxCharset optimizedCharsetWithoutPrefix = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.optimize(referenceCharset);
+
+		// Then: the equivalent prefix line encoding is reused
+
+		assertSame(prefixCharset.get(0), optimizedCharset.get(0));
+		assertSame(referenceCharset.get(0), optimizedCharsetWithoutPrefix.get(0));
+	}
+
+	@Test
+	void prefixPreferredBackgroundTest() {
+
+		// Given: color 6 is the most common color of the charset, but color 5 is the most common one overall
+
+		final MsxCharset prefixCharset = charsetOf(
+				new int[] { 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 },
+				new int[] { 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15, 0x15 });
+		final MsxCharset referenceCharset = charsetOf(
+				new int[] { 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01, 0x01 },
+				new int[] { 0x56, 0x56, 0x56, 0x56, 0x56, 0x56, 0x56, 0x56 });
+
+		// When
+
+		final MsxCharset optimizedCharset = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.setPrefix(prefixCharset)
+				.optimize(referenceCharset);
+		final MsxCharset optimizedCharsetWithoutPrefix = new MsxCharsetOptimizer()
+				.setForceStrippedImage(Boolean.FALSE)
+				.optimize(referenceCharset);
+
+		// Then: color 5 is used as background
+
+		assertSame(referenceCharset.get(0).inverted(), optimizedCharset.get(0));
+		assertSame(referenceCharset.get(0), optimizedCharsetWithoutPrefix.get(0));
+	}
+
+	private static void assertSame(final MsxLine expected, final MsxLine actual) {
+
+		Assertions.assertTrue(
+				expected.isSameAs(actual),
+				"Expected " + expected + ", but found: " + actual);
+	}
+
+	private static MsxCharset charsetOf(final int[] chrtbl, final int[] clrtbl) {
+
+		final byte[] chrBytes = new byte[chrtbl.length];
+		final byte[] clrBytes = new byte[clrtbl.length];
+		for (int i = 0; i < chrtbl.length; i++) {
+			chrBytes[i] = (byte) chrtbl[i];
+			clrBytes[i] = (byte) clrtbl[i];
+		}
+		return MsxCharset.of(chrBytes, clrBytes);
+	}
+
+	private static Stream<Arguments> prefixVerificationTestArguments() {
+
+		return Stream.of(
+			Arguments.of("ninjasenki.png", "pyramidwarpex.png"),
+			Arguments.of("pyramidwarpex.png", "stevedore.png"),
+			Arguments.of("stevedore.png", "youkaiyashiki.png"),
+			Arguments.of("youkaiyashiki.png", "ninjasenki.png")
+		);
+	}
+
 	private static Stream<Arguments> verificationTestArguments() {
 
 		return Stream.of(
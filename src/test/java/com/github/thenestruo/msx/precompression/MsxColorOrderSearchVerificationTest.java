@@ -0,0 +1,93 @@
+package com.github.thenestruo.msx.precompression;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import com.github.thenestruo.commons.msx.MsxCharset;
+
+public class MsxColorOrderSearchVerificationTest {
+
+	@Test
+	void estimateSizeTest() {
+
+		// Given
+
+		final byte[] chrBytes = new byte[16];
+		final byte[] clrBytes = new byte[16];
+		for (int i = 0; i < 16; i++) {
+			chrBytes[i] = (byte) ((i % 2) == 0 ? 0x00 : 0xff); // 8 literals, then repeats the previous character
+			clrBytes[i] = (byte) (i < 8 ? 0x1f : 0xf1); // 2 literals, then repeats the previous byte
+		}
+
+		// When
+
+		final int estimatedSize = MsxColorOrderSearch.estimateSize(MsxCharset.of(chrBytes, clrBytes));
+
+		// Then
+
+		Assertions.assertEquals(8 + 2, estimatedSize);
+	}
+
+	@Test
+	void searchTest() throws IOException {
+
+		// Given
+
+		final List<MsxCharset> corpus = new ArrayList<>();
+		for (final String filename : new String[] {
+				"ninjasenki.png",
+				"pyramidwarpex.png",
+				"stevedore.png",
+				"youkaiyashiki.png" }) {
+			corpus.add(TestCharsets.readCharset(filename));
+		}
+
+		// When
+
+		final List<Byte> colorOrder = new MsxColorOrderSearch()
+				.setChains(2)
+				.setIterations(20)
+				.setSeed(42L)
+				.search(corpus);
+		final List<Byte> sameSeedColorOrder = new MsxColorOrderSearch()
+				.setChains(2)
+				.setIterations(20)
+				.setSeed(42L)
+				.search(corpus);
+
+		// Then
+
+		Assertions.assertEquals(16, new HashSet<>(colorOrder).size());
+		Assertions.assertEquals(colorOrder, sameSeedColorOrder);
+	}
+
+	@Test
+	void parseColorOrderTest() {
+
+		Assertions.assertEquals(
+				MsxCharsetOptimizer.DEFAULT_COLOR_ORDER,
+				MsxCharsetOptimizer.parseColorOrder("0146D58C293A7EBF"));
+		Assertions.assertEquals(
+				"0146D58C293A7EBF",
+				MsxCharsetOptimizer.formatColorOrder(MsxCharsetOptimizer.parseColorOrder(" 0146d58c293a7ebf\n")));
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {
+		"0123456789ABCDEE", // (duplicate digit)
+		"0123456789ABCDEG", // (non-hexadecimal digit)
+		"0123456789ABCDE",  // (too short)
+		"0123456789ABCDEF0" // (too long)
+	})
+	void parseInvalidColorOrderTest(final String value) {
+
+		Assertions.assertThrows(IllegalArgumentException.class, () -> MsxCharsetOptimizer.parseColorOrder(value));
+	}
+}
@@ -0,0 +1,35 @@
+package com.github.thenestruo.msx.precompression;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.junit.jupiter.api.Assumptions;
+
+import com.github.thenestruo.commons.io.ClassPathResource;
+import com.github.thenestruo.commons.msx.MsxCharset;
+
+final class TestCharsets {
+
+	private TestCharsets() {
+		// (utility class)
+	}
+
+	/**
+	 * @param filename the base name of the CHRTBL ({@code .chr}) and CLRTBL ({@code .clr}) test resources
+	 * @return the charset
+	 */
+	static MsxCharset readCharset(final String filename) throws IOException {
+
+		final byte[] chrBytes;
+		final byte[] clrBytes;
+		try (
+				final InputStream chrInputStream = new ClassPathResource(filename + ".chr").getInputStream();
+				final InputStream clrInputStream = new ClassPathResource(filename + ".clr").getInputStream()) {
+			chrBytes = chrInputStream.readAllBytes();
+			clrBytes = clrInputStream.readAllBytes();
+		}
+		Assumptions.assumeTrue(chrBytes.length == clrBytes.length);
+
+		return MsxCharset.of(chrBytes, clrBytes);
+	}
+}